@@ -2,11 +2,15 @@ package org.mapstory.geoserver.boundsupdater;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.StreamSupport;
@@ -47,12 +51,111 @@ public class BoundsUpdateTransactionListener implements TransactionPlugin {
     private static Logger log = Logging.getLogger(BoundsUpdateTransactionListener.class);
     
     static final String FEATURE_TYPE_AFFECTED_MAP = "BOUNDS_UPDATE_TRANSACTION_FEATURE_TYPE_AFFECTED_MAP";
+    
+    static final int DEFAULT_MAX_DIRTY_REGIONS = 8;
 
     Catalog catalog;
     
+    /**
+     * Unfiltered catalog used by lazy flushes, which run on behalf of whichever request or thread
+     * triggered them
+     */
+    Catalog rawCatalog;
+    
+    int maxDirtyRegions = DEFAULT_MAX_DIRTY_REGIONS;
+    
+    boolean lazy = false;
+    
+    Set<String> lazyLayers = Collections.emptySet();
+    
+    /**
+     * Expansions not yet persisted when running in lazy mode, by layer, in the native CRS of each
+     * layer.
+     */
+    final Map<Name, ReferencedEnvelope> pendingBounds = new ConcurrentHashMap<>();
+    
     public BoundsUpdateTransactionListener(Catalog catalog) {
         super();
         this.catalog = catalog;
+        this.rawCatalog = catalog;
+    }
+    
+    /**
+     * Sets the catalog lazy flushes read and save through. It should be the raw catalog, as the
+     * secured one hides layers and groups the triggering request cannot see, and their pending
+     * bounds would then be dropped or never applied.
+     */
+    public void setRawCatalog(Catalog rawCatalog) {
+        this.rawCatalog = rawCatalog;
+    }
+    
+    /**
+     * Sets how many separate rectangles are kept per layer to describe the area affected by a
+     * transaction before the closest ones start being merged.
+     */
+    public void setMaxDirtyRegions(int maxDirtyRegions) {
+        if (maxDirtyRegions < 1) {
+            throw new IllegalArgumentException("At least one dirty region must be allowed, got "+maxDirtyRegions);
+        }
+        this.maxDirtyRegions = maxDirtyRegions;
+    }
+    
+    public int getMaxDirtyRegions() {
+        return maxDirtyRegions;
+    }
+    
+    /**
+     * When lazy, committed changes only expand an in-memory envelope per layer, and the catalog is
+     * updated when {@link #flushPendingBounds()} is called. Meant for layers receiving a constant
+     * stream of inserts, where saving the bounds after each transaction costs far more than the
+     * occasional read of them. This applies to every layer in the catalog, use
+     * {@link #setLazyLayers(Collection)} to only defer the bounds of specific hot layers.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+    
+    public boolean isLazy() {
+        return lazy;
+    }
+    
+    /**
+     * Sets the prefixed names of the layers whose bounds are updated lazily, as if
+     * {@link #setLazy(boolean)} were on for them only.
+     */
+    public void setLazyLayers(Collection<String> lazyLayers) {
+        this.lazyLayers = new HashSet<>(lazyLayers);
+    }
+    
+    public Set<String> getLazyLayers() {
+        return Collections.unmodifiableSet(lazyLayers);
+    }
+    
+    /**
+     * Whether the bounds of any layer may be updated lazily
+     */
+    public boolean usesLazyBounds() {
+        return lazy || !lazyLayers.isEmpty();
+    }
+    
+    boolean isLazy(FeatureTypeInfo fti) {
+        return lazy || (!lazyLayers.isEmpty() && lazyLayers.contains(fti.prefixedName()));
+    }
+    
+    /**
+     * Returns the rectangles affected so far by the given transaction, by layer. Their union is
+     * what gets added to the layer bounds, but consumers that can work on each rectangle separately
+     * avoid processing the space between distant edits.
+     */
+    public static Map<Name, Collection<ReferencedEnvelope>> getDirtyRegions(
+            final TransactionType transaction) {
+        @SuppressWarnings("unchecked")
+        Map<Name, Collection<ReferencedEnvelope>> byLayerDirtyRegions = (Map<Name, Collection<ReferencedEnvelope>>) transaction
+                .getExtendedProperties().get(FEATURE_TYPE_AFFECTED_MAP);
+        if (byLayerDirtyRegions == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(byLayerDirtyRegions);
     }
 
     @Override
@@ -147,21 +250,22 @@ public class BoundsUpdateTransactionListener implements TransactionPlugin {
         
         Collection<ReferencedEnvelope> layerDirtyRegion = byLayerDirtyRegions.get(featureTypeName);
         if (layerDirtyRegion == null) {
-            layerDirtyRegion = new ArrayList<ReferencedEnvelope>(2);
+            // Keeps distant edits apart, up to a limit, rather than growing a single envelope
+            layerDirtyRegion = new DirtyRegionSet(maxDirtyRegions);
             byLayerDirtyRegions.put(featureTypeName, layerDirtyRegion);
         }
         layerDirtyRegion.add(affectedBounds);
     }
     
-    void updateFeatureType(FeatureTypeInfo fti, ReferencedEnvelope dirtyRegion) {
+    void updateFeatureType(FeatureTypeInfo fti, ReferencedEnvelope dirtyRegion, CatalogSaveBatch batch) {
         log.fine(()->"Updating bounds of "+fti.prefixedName()+" in response to data change");
         ReferencedEnvelope bounds = fti.getNativeBoundingBox();
         bounds.expandToInclude(dirtyRegion); // CRSes should already match
         fti.setNativeBoundingBox(bounds);
-        catalog.save(fti);
+        batch.add(fti);
     }
     
-    void updateLayerGroup(LayerGroupInfo lgi, ReferencedEnvelope dirtyRegion) {
+    void updateLayerGroup(LayerGroupInfo lgi, ReferencedEnvelope dirtyRegion, CatalogSaveBatch batch) {
         log.fine(()->"Updating bounds of "+lgi.prefixedName()+" in response to data change");
         ReferencedEnvelope bounds = lgi.getBounds();
         try {
@@ -170,7 +274,7 @@ public class BoundsUpdateTransactionListener implements TransactionPlugin {
             log.log(Level.WARNING, "Error while transforming changes to coordinate system of layer group "+lgi.prefixedName(), ex);
         }
         lgi.setBounds(bounds);
-        catalog.save(lgi);
+        batch.add(lgi);
     }
     
     private void afterTransactionInternal(final TransactionType transaction, boolean committed) {
@@ -180,22 +284,99 @@ public class BoundsUpdateTransactionListener implements TransactionPlugin {
         if (byLayerDirtyRegions.isEmpty()) {
             return;
         }
+        // Collect everything that changes so each object is saved once, after all the layers
+        // touched by the transaction have been processed
+        final CatalogSaveBatch batch = new CatalogSaveBatch();
         byLayerDirtyRegions.entrySet().stream().forEach(e->{
             FeatureTypeInfo fti = catalog.getFeatureTypeByName(e.getKey());
             try{
                 merge(fti.getNativeBoundingBox(), e.getValue()).ifPresent(dirtyRegion->{
-                    // Update the feature type
-                    updateFeatureType(fti, dirtyRegion);
-                    // Update all the layer groups that use it, directly or indirectly
-                    StreamSupport.stream(getLayerGroupsFor(fti).spliterator(), false)
-                        .forEach(lgi->updateLayerGroup(lgi, dirtyRegion));
+                    if (isLazy(fti)) {
+                        // Persisted later, when someone needs the bounds
+                        pendingBounds.merge(e.getKey(), dirtyRegion, DirtyRegionSet::union);
+                    } else {
+                        updateBounds(catalog, fti, dirtyRegion, batch);
+                    }
                 });
             } catch (Exception ex) {
                 log.log(Level.WARNING, ex.getMessage(), ex);
                 return;
             }
         });
- 
+        if (!batch.isEmpty()) {
+            batch.save(catalog);
+        }
+    }
+    
+    /**
+     * Expands the bounds of the feature type and of every layer group containing it.
+     *
+     * @return the ids of the objects added to the batch
+     */
+    private List<String> updateBounds(Catalog catalog, FeatureTypeInfo fti, ReferencedEnvelope dirtyRegion, CatalogSaveBatch batch) {
+        final List<String> touched = new ArrayList<>();
+        // Update the feature type
+        updateFeatureType(fti, dirtyRegion, batch);
+        touched.add(fti.getId());
+        // Update all the layer groups that use it, directly or indirectly
+        StreamSupport.stream(getLayerGroupsFor(catalog, fti).spliterator(), false)
+            .map(batch::pending)
+            .forEach(lgi->{
+                updateLayerGroup(lgi, dirtyRegion, batch);
+                touched.add(lgi.getId());
+            });
+        return touched;
+    }
+    
+    public boolean hasPendingBounds() {
+        return !pendingBounds.isEmpty();
+    }
+    
+    /**
+     * Persists the bounds expansions accumulated in lazy mode. Does nothing if there are none.
+     * Expansions that could not be applied or saved are kept for the next flush, as nothing else
+     * holds them. Runs against the raw catalog so the caller's view of it does not matter.
+     */
+    public synchronized void flushPendingBounds() {
+        if (pendingBounds.isEmpty()) {
+            return;
+        }
+        log.fine("Updating bounds of feature types and layer groups with pending changes");
+        final CatalogSaveBatch batch = new CatalogSaveBatch();
+        final Map<Name, ReferencedEnvelope> flushed = new HashMap<>();
+        final Map<Name, List<String>> touchedByLayer = new HashMap<>();
+        for (Name name : new ArrayList<>(pendingBounds.keySet())) {
+            final ReferencedEnvelope dirtyRegion = pendingBounds.remove(name);
+            if (dirtyRegion == null) {
+                continue;
+            }
+            try {
+                FeatureTypeInfo fti = rawCatalog.getFeatureTypeByName(name);
+                if (Objects.isNull(fti)) {
+                    // not filtered, so really removed since the change was recorded
+                    log.fine(()->"Dropping pending bounds of removed feature type "+name);
+                    continue;
+                }
+                touchedByLayer.put(name, updateBounds(rawCatalog, fti, dirtyRegion, batch));
+                flushed.put(name, dirtyRegion);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Error updating bounds of "+name+" with pending changes", ex);
+                pendingBounds.merge(name, dirtyRegion, DirtyRegionSet::union);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        final Set<String> failed = batch.save(rawCatalog);
+        if (failed.isEmpty()) {
+            return;
+        }
+        // Expanding again objects that did get saved is harmless, so retry every layer involved
+        touchedByLayer.forEach((name, touched)->{
+            if (touched.stream().anyMatch(failed::contains)) {
+                pendingBounds.merge(name, flushed.get(name), DirtyRegionSet::union);
+            }
+        });
     }
     
     private Optional<ReferencedEnvelope> merge(final ReferencedEnvelope oldEnv,
@@ -222,7 +403,7 @@ public class BoundsUpdateTransactionListener implements TransactionPlugin {
     private FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
     
     // Copied this from the GWC mediator
-    private Iterable<LayerGroupInfo> getLayerGroupsFor(final FeatureTypeInfo featureType) {
+    private Iterable<LayerGroupInfo> getLayerGroupsFor(final Catalog catalog, final FeatureTypeInfo featureType) {
         List<LayerGroupInfo> layerGroups = new ArrayList<LayerGroupInfo>();
         
         // get the layers whose default style is that style, they might be in layer groups
@@ -246,12 +427,12 @@ public class BoundsUpdateTransactionListener implements TransactionPlugin {
             log.log(Level.SEVERE, "Failed to load groups associated with feature type " + featureType.prefixedName(), e);
         }
         
-        loadGroupParents(layerGroups); 
+        loadGroupParents(catalog, layerGroups); 
         
         return layerGroups;
     }
     
-    private void loadGroupParents(List<LayerGroupInfo> layerGroups) {
+    private void loadGroupParents(final Catalog catalog, List<LayerGroupInfo> layerGroups) {
         boolean foundNewParents = true;
         List<LayerGroupInfo> newGroups = new ArrayList<>(layerGroups);
         while(foundNewParents && !newGroups.isEmpty()) {
@@ -0,0 +1,78 @@
+package org.mapstory.geoserver.boundsupdater;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Collects the feature types and layer groups modified while handling a transaction so they can
+ * be persisted together once all the bounds have been computed.
+ * <p>
+ * The catalog offers no bulk save, so each modified object is still saved on its own, but every
+ * object is saved only once no matter how many dirty layers touched it, and a failure to save one
+ * of them does not prevent the others from being saved. The ids of the objects that could not be
+ * saved are returned so callers can retry them.
+ */
+class CatalogSaveBatch {
+    private static Logger log = Logging.getLogger(CatalogSaveBatch.class);
+
+    final Map<String, FeatureTypeInfo> featureTypes = new LinkedHashMap<>();
+
+    final Map<String, LayerGroupInfo> layerGroups = new LinkedHashMap<>();
+
+    void add(FeatureTypeInfo fti) {
+        featureTypes.putIfAbsent(fti.getId(), fti);
+    }
+
+    void add(LayerGroupInfo lgi) {
+        layerGroups.putIfAbsent(lgi.getId(), lgi);
+    }
+
+    /**
+     * Returns the pending instance of the given layer group if one has already been added, so
+     * changes coming from several layers accumulate on the same object.
+     */
+    LayerGroupInfo pending(LayerGroupInfo lgi) {
+        return layerGroups.getOrDefault(lgi.getId(), lgi);
+    }
+
+    boolean isEmpty() {
+        return featureTypes.isEmpty() && layerGroups.isEmpty();
+    }
+
+    /**
+     * Saves every pending object, feature types first and then layer groups. The bounds of each
+     * group are set explicitly beforehand, so the order groups are saved in does not matter.
+     *
+     * @return the ids of the objects that failed to save
+     */
+    Set<String> save(Catalog catalog) {
+        Set<String> failed = new HashSet<>();
+        log.fine(()->"Saving "+featureTypes.size()+" feature types and "+layerGroups.size()+" layer groups");
+        for (FeatureTypeInfo fti : featureTypes.values()) {
+            try {
+                catalog.save(fti);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Error saving updated bounds of feature type "+fti.prefixedName(), ex);
+                failed.add(fti.getId());
+            }
+        }
+        for (LayerGroupInfo lgi : layerGroups.values()) {
+            try {
+                catalog.save(lgi);
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Error saving updated bounds of layer group "+lgi.prefixedName(), ex);
+                failed.add(lgi.getId());
+            }
+        }
+        return failed;
+    }
+}
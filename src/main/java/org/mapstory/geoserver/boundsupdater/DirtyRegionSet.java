@@ -0,0 +1,132 @@
+package org.mapstory.geoserver.boundsupdater;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.geometry.BoundingBox;
+
+/**
+ * A bounded set of rectangles describing the areas of a layer affected by a transaction.
+ * <p>
+ * Rectangles are kept apart so that edits in distant parts of the world do not produce a single
+ * region covering everything in between. Once more than {@code maxSize} rectangles are held, the
+ * closest pair is merged, as the R-tree insertion heuristic does. Closeness is the dead area of
+ * their union plus the square of the gap between them, so that points, or lines sharing a
+ * coordinate, are not merged across the map just because their union has no area. Regions covered
+ * by a new or merged region are dropped so they do not take up room.
+ * Rectangles in different coordinate reference systems are never merged together, so the limit may
+ * be exceeded if the events of a transaction use more than {@code maxSize} different CRSes.
+ */
+class DirtyRegionSet extends AbstractCollection<ReferencedEnvelope> {
+
+    final int maxSize;
+
+    final List<ReferencedEnvelope> regions;
+
+    DirtyRegionSet(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("At least one dirty region must be allowed, got "+maxSize);
+        }
+        this.maxSize = maxSize;
+        this.regions = new ArrayList<>(maxSize + 1);
+    }
+
+    @Override
+    public boolean add(ReferencedEnvelope env) {
+        if (env == null || env.isNull()) {
+            return false;
+        }
+        for (ReferencedEnvelope region : regions) {
+            if (compatible(region, env) && region.contains((BoundingBox) env)) {
+                // Already covered
+                return false;
+            }
+        }
+        regions.add(env);
+        removeCoveredBy(env);
+        while (regions.size() > maxSize && mergeClosestPair()) {
+            // keep merging until within bounds or nothing more can be merged
+        }
+        return true;
+    }
+
+    /**
+     * Merges the closest pair of compatible regions.
+     *
+     * @return false if there was no pair that could be merged
+     */
+    boolean mergeClosestPair() {
+        int bestI = -1, bestJ = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < regions.size(); i++) {
+            for (int j = i + 1; j < regions.size(); j++) {
+                ReferencedEnvelope a = regions.get(i), b = regions.get(j);
+                if (!compatible(a, b)) {
+                    continue;
+                }
+                double cost = cost(a, b);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestI = i;
+                    bestJ = j;
+                }
+            }
+        }
+        if (bestI < 0) {
+            return false;
+        }
+        ReferencedEnvelope merged = union(regions.get(bestI), regions.get(bestJ));
+        // remove the higher index first so the lower one stays valid
+        regions.remove(bestJ);
+        regions.set(bestI, merged);
+        removeCoveredBy(merged);
+        return true;
+    }
+
+    /**
+     * Dead area of the union of both regions plus the square of the gap between them, which is
+     * zero when they touch or overlap.
+     */
+    static double cost(ReferencedEnvelope a, ReferencedEnvelope b) {
+        double deadArea = union(a, b).getArea() - a.getArea() - b.getArea();
+        double gapX = Math.max(0, Math.max(a.getMinX(), b.getMinX()) - Math.min(a.getMaxX(), b.getMaxX()));
+        double gapY = Math.max(0, Math.max(a.getMinY(), b.getMinY()) - Math.min(a.getMaxY(), b.getMaxY()));
+        double gap = gapX + gapY;
+        return deadArea + gap * gap;
+    }
+
+    /**
+     * Removes the regions other than {@code container} it covers.
+     */
+    void removeCoveredBy(ReferencedEnvelope container) {
+        regions.removeIf(region->region != container
+                && compatible(region, container)
+                && container.contains((BoundingBox) region));
+    }
+
+    static boolean compatible(ReferencedEnvelope a, ReferencedEnvelope b) {
+        return a.getDimension() == b.getDimension()
+                && CRS.equalsIgnoreMetadata(a.getCoordinateReferenceSystem(), b.getCoordinateReferenceSystem());
+    }
+
+    static ReferencedEnvelope union(ReferencedEnvelope a, ReferencedEnvelope b) {
+        // create keeps the 3D envelope type when needed
+        ReferencedEnvelope x = ReferencedEnvelope.create(a);
+        x.expandToInclude(b);
+        return x;
+    }
+
+    @Override
+    public Iterator<ReferencedEnvelope> iterator() {
+        return regions.iterator();
+    }
+
+    @Override
+    public int size() {
+        return regions.size();
+    }
+}
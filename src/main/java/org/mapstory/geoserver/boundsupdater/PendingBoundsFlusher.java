@@ -0,0 +1,138 @@
+package org.mapstory.geoserver.boundsupdater;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.Operation;
+import org.geotools.util.logging.Logging;
+import org.restlet.Restlet;
+import org.restlet.data.Method;
+import org.restlet.data.Response;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Brings the persisted bounds up to date when the {@link BoundsUpdateTransactionListener} runs in
+ * lazy mode: before any OWS GetCapabilities, before REST reads of layers, feature types and layer
+ * groups, and on a background tick, whichever comes first.
+ */
+public class PendingBoundsFlusher extends AbstractDispatcherCallback
+        implements org.geoserver.rest.DispatcherCallback, InitializingBean, DisposableBean {
+    private static Logger log = Logging.getLogger(PendingBoundsFlusher.class);
+
+    static final long DEFAULT_INTERVAL = 60;
+
+    /**
+     * REST resources exposing bounds: layers, feature types and layer groups, whether global or
+     * inside a workspace
+     */
+    static final Pattern BOUNDS_RESOURCE = Pattern.compile(
+            ".*/rest/(layers|layergroups|workspaces/[^/]+/(layergroups|featuretypes|datastores/[^/]+/featuretypes))([/.].*)?");
+
+    final BoundsUpdateTransactionListener listener;
+
+    long interval = DEFAULT_INTERVAL;
+
+    ScheduledExecutorService executor;
+
+    public PendingBoundsFlusher(BoundsUpdateTransactionListener listener) {
+        super();
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the number of seconds between background flushes. Zero or less disables them.
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    void flush() {
+        if (!listener.hasPendingBounds()) {
+            return;
+        }
+        try {
+            listener.flushPendingBounds();
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Error trying to update bounds with pending changes", e);
+        }
+    }
+
+    @Override
+    public Operation operationDispatched(Request request, Operation operation) {
+        if ("GetCapabilities".equalsIgnoreCase(operation.getId())) {
+            flush();
+        }
+        return operation;
+    }
+
+    @Override
+    public void init(org.restlet.data.Request request, Response response) {
+        if (Method.GET.equals(request.getMethod()) && readsBounds(request.getResourceRef().getPath())) {
+            flush();
+        }
+    }
+
+    static boolean readsBounds(String path) {
+        return path != null && BOUNDS_RESOURCE.matcher(path).matches();
+    }
+
+    @Override
+    public void dispatched(org.restlet.data.Request request, Response response, Restlet restlet) {
+        // Do Nothing
+    }
+
+    @Override
+    public void exception(org.restlet.data.Request request, Response response, Exception error) {
+        // Do Nothing
+    }
+
+    @Override
+    public void finished(org.restlet.data.Request request, Response response) {
+        // Do Nothing
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!listener.usesLazyBounds() || interval <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r->{
+            Thread t = new Thread(r, "Bounds updater flush");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Background flush. Anything thrown out of here would cancel every later tick, so nothing is.
+     */
+    void tick() {
+        try {
+            flush();
+        } catch (Throwable e) {
+            log.log(Level.SEVERE, "Unexpected error in background bounds update", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        // Don't lose what was accumulated since the last flush
+        flush();
+    }
+}
@@ -8,12 +8,14 @@ package org.mapstory.geoserver.boundsupdater;
 import static org.geotools.referencing.crs.DefaultGeographicCRS.WGS84;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasEntry;
 import static org.junit.Assert.assertThat;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -70,6 +72,8 @@ public class BoundsUpdateTransactionListenerTest {
         catalog = EasyMock.createMock("catalog", Catalog.class);
         featureType1 = EasyMock.createMock("featureType1", FeatureTypeInfo.class);
         featureType2 = EasyMock.createMock("featureType2", FeatureTypeInfo.class);
+        EasyMock.expect(featureType1.getId()).andStubReturn("featureType1Id");
+        EasyMock.expect(featureType2.getId()).andStubReturn("featureType2Id");
         
         listener = new BoundsUpdateTransactionListener(catalog);
     }
@@ -262,6 +266,63 @@ public class BoundsUpdateTransactionListenerTest {
         
     }
     
+    private void checkDirtyRegions(int maxDirtyRegions, Matcher<Iterable<? extends ReferencedEnvelope>> expectedRegions) {
+        Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+        ReferencedEnvelope affectedBounds1 = new ReferencedEnvelope(-170, -160, 10, 20, WGS84);
+        ReferencedEnvelope affectedBounds2 = new ReferencedEnvelope(160, 170, -20, -10, WGS84);
+        ReferencedEnvelope oldBounds = new ReferencedEnvelope(-90, 0, 0, 45, WGS84);
+        ReferencedEnvelope newBounds = new ReferencedEnvelope(oldBounds);
+        newBounds.expandToInclude(affectedBounds1);
+        newBounds.expandToInclude(affectedBounds2);
+        
+        LayerInfo layer = mockLayer(featureType1, "layer");
+        
+        EasyMock.expect(catalog.getFeatureTypeByName(featureTypeName1)).andStubReturn(featureType1);
+        EasyMock.expect(featureType1.getNativeBoundingBox()).andStubReturn(oldBounds);
+        
+        // Whatever the number of rectangles, the bounds get their union
+        featureType1.setNativeBoundingBox(EasyMock.eq(newBounds));EasyMock.expectLastCall().once(); 
+        catalog.save(featureType1);EasyMock.expectLastCall().once();
+        
+        EasyMock.expect(catalog.list(EasyMock.eq(LayerGroupInfo.class), EasyMock.anyObject()))
+            .andStubAnswer(()-> new CloseableIteratorAdapter<LayerGroupInfo>(
+                    Collections.emptyListIterator()));
+        
+        EasyMock.replay(catalog, featureType1, featureType2, layer);
+        
+        listener.setMaxDirtyRegions(maxDirtyRegions);
+        
+        issueInsert(extendedProperties, affectedBounds1);
+        
+        issueInsert(extendedProperties, affectedBounds2);
+        
+        TransactionType request = EasyMock.createNiceMock(TransactionType.class);
+        TransactionResponseType result = EasyMock.createNiceMock(TransactionResponseType.class);
+        EasyMock.expect(request.getExtendedProperties()).andStubReturn(extendedProperties);
+        EasyMock.replay(request, result);
+        
+        Map<Name, Collection<ReferencedEnvelope>> dirtyRegions = BoundsUpdateTransactionListener.getDirtyRegions(request);
+        assertThat(dirtyRegions.keySet(), contains(featureTypeName1));
+        assertThat(dirtyRegions.get(featureTypeName1), expectedRegions);
+        
+        listener.afterTransaction(request, result, true);
+        
+        EasyMock.verify(catalog, featureType1, featureType2, request, result, layer);
+    }
+    
+    @Test
+    public void testDirtyRegionsKeptApart() throws Exception {
+        checkDirtyRegions(BoundsUpdateTransactionListener.DEFAULT_MAX_DIRTY_REGIONS, containsInAnyOrder(
+                new ReferencedEnvelope(-170, -160, 10, 20, WGS84),
+                new ReferencedEnvelope(160, 170, -20, -10, WGS84)));
+    }
+    
+    @Test
+    public void testDirtyRegionsCollapsed() throws Exception {
+        checkDirtyRegions(1, contains(
+                new ReferencedEnvelope(-170, 170, -20, 20, WGS84)));
+    }
+    
     LayerGroupInfo mockGroup(String name, ReferencedEnvelope bounds, LayerInfo root, PublishedInfo... children) {
         LayerGroupInfo lgi = EasyMock.createMock(name, LayerGroupInfo.class);
         EasyMock.expect(lgi.getLayers()).andStubReturn(Arrays.asList(children));
@@ -393,6 +454,263 @@ public class BoundsUpdateTransactionListenerTest {
         
     }
 
+    @Test
+    public void testAfterTransactionSharedLayerGroupSavedOnce() throws Exception {
+        Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+        ReferencedEnvelope affectedBounds1 = new ReferencedEnvelope(-180, 0, 0, 90, WGS84);
+        ReferencedEnvelope affectedBounds2 = new ReferencedEnvelope(0, 180, -90, 0, WGS84);
+        ReferencedEnvelope oldBounds = new ReferencedEnvelope(-90, 0, 0, 45, WGS84);
+        ReferencedEnvelope newBounds1 = new ReferencedEnvelope(oldBounds);
+        newBounds1.expandToInclude(affectedBounds1);
+        ReferencedEnvelope newBounds2 = new ReferencedEnvelope(oldBounds);
+        newBounds2.expandToInclude(affectedBounds2);
+        ReferencedEnvelope newGroupBounds = new ReferencedEnvelope(newBounds1);
+        newGroupBounds.expandToInclude(newBounds2);
+        
+        EasyMock.expect(catalog.getFeatureTypeByName(featureTypeName1)).andStubReturn(featureType1);
+        EasyMock.expect(featureType1.getNativeBoundingBox()).andStubReturn(new ReferencedEnvelope(oldBounds));
+        EasyMock.expect(catalog.getFeatureTypeByName(featureTypeName2)).andStubReturn(featureType2);
+        EasyMock.expect(featureType2.getNativeBoundingBox()).andStubReturn(new ReferencedEnvelope(oldBounds));
+        
+        LayerInfo layer = mockLayer(featureType1, "layer");
+        LayerInfo otherLayer = mockLayer(featureType2, "otherLayer");
+        
+        List<LayerGroupInfo> groups = new ArrayList<>();
+        
+        LayerGroupInfo shared = mockGroup("shared", oldBounds, null, layer, otherLayer);
+        shared.setBounds(EasyMock.anyObject());EasyMock.expectLastCall().times(2);
+        // Saved a single time, with the bounds of both layers
+        catalog.save(shared);EasyMock.expectLastCall().once();
+        groups.add(shared);
+        
+        mockLayerGroupList(groups);
+        
+        featureType1.setNativeBoundingBox(EasyMock.eq(newBounds1));EasyMock.expectLastCall().once();
+        catalog.save(featureType1);EasyMock.expectLastCall().once();
+        featureType2.setNativeBoundingBox(EasyMock.eq(newBounds2));EasyMock.expectLastCall().once();
+        catalog.save(featureType2);EasyMock.expectLastCall().once();
+        
+        EasyMock.replay(catalog, featureType1, featureType2, layer, otherLayer);
+        groups.forEach(EasyMock::replay);
+        
+        issueInsert(extendedProperties, featureTypeQName1, affectedBounds1);
+        
+        issueInsert(extendedProperties, featureTypeQName2, affectedBounds2);
+        
+        TransactionType request = EasyMock.createNiceMock(TransactionType.class);
+        TransactionResponseType result = EasyMock.createNiceMock(TransactionResponseType.class);
+        EasyMock.expect(request.getExtendedProperties()).andReturn(extendedProperties);
+        EasyMock.replay(request, result);
+        
+        listener.afterTransaction(request, result, true);
+        
+        assertThat(shared.getBounds(), equalTo(newGroupBounds));
+        
+        EasyMock.verify(catalog, featureType1, featureType2, request, result, layer, otherLayer);
+        groups.forEach(EasyMock::verify);
+    }
+
+    @Test
+    public void testAfterTransactionLazy() throws Exception {
+        Map<Object, Object> extendedProperties1 = new HashMap<Object, Object>();
+        Map<Object, Object> extendedProperties2 = new HashMap<Object, Object>();
+        ReferencedEnvelope affectedBounds1 = new ReferencedEnvelope(-180, 0, 0, 90, WGS84);
+        ReferencedEnvelope affectedBounds2 = new ReferencedEnvelope(0, 180, 0, 90, WGS84);
+        ReferencedEnvelope oldBounds = new ReferencedEnvelope(-90, 0, 0, 45, WGS84);
+        ReferencedEnvelope newBounds = new ReferencedEnvelope(oldBounds);
+        newBounds.expandToInclude(affectedBounds1);
+        newBounds.expandToInclude(affectedBounds2);
+        
+        LayerInfo layer = mockLayer(featureType1, "layer");
+        
+        EasyMock.expect(catalog.getFeatureTypeByName(featureTypeName1)).andStubReturn(featureType1);
+        EasyMock.expect(featureType1.getNativeBoundingBox()).andStubReturn(oldBounds);
+        
+        // Two transactions, a single update once flushed
+        featureType1.setNativeBoundingBox(EasyMock.eq(newBounds));EasyMock.expectLastCall().once(); 
+        catalog.save(featureType1);EasyMock.expectLastCall().once();
+        
+        EasyMock.expect(catalog.list(EasyMock.eq(LayerGroupInfo.class), EasyMock.anyObject()))
+            .andStubAnswer(()-> new CloseableIteratorAdapter<LayerGroupInfo>(
+                    Collections.emptyListIterator()));
+        
+        EasyMock.replay(catalog, featureType1, featureType2, layer);
+        
+        listener.setLazy(true);
+        
+        issueInsert(extendedProperties1, affectedBounds1);
+        issueInsert(extendedProperties2, affectedBounds2);
+        
+        TransactionType request1 = EasyMock.createNiceMock(TransactionType.class);
+        TransactionType request2 = EasyMock.createNiceMock(TransactionType.class);
+        TransactionResponseType result = EasyMock.createNiceMock(TransactionResponseType.class);
+        EasyMock.expect(request1.getExtendedProperties()).andStubReturn(extendedProperties1);
+        EasyMock.expect(request2.getExtendedProperties()).andStubReturn(extendedProperties2);
+        EasyMock.replay(request1, request2, result);
+        
+        listener.afterTransaction(request1, result, true);
+        listener.afterTransaction(request2, result, true);
+        
+        Assert.assertTrue(listener.hasPendingBounds());
+        
+        listener.flushPendingBounds();
+        
+        Assert.assertFalse(listener.hasPendingBounds());
+        
+        // Nothing left to do
+        listener.flushPendingBounds();
+        
+        EasyMock.verify(catalog, featureType1, featureType2, request1, request2, result, layer);
+    }
+    
+    @Test
+    public void testAfterTransactionLazyLayers() throws Exception {
+        Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+        ReferencedEnvelope affectedBounds1 = new ReferencedEnvelope(-180, 0, 0, 90, WGS84);
+        ReferencedEnvelope affectedBounds2 = new ReferencedEnvelope(0, 180, -90, 0, WGS84);
+        ReferencedEnvelope oldBounds = new ReferencedEnvelope(-90, 0, 0, 45, WGS84);
+        ReferencedEnvelope newBounds1 = new ReferencedEnvelope(oldBounds);
+        newBounds1.expandToInclude(affectedBounds1);
+        ReferencedEnvelope newBounds2 = new ReferencedEnvelope(oldBounds);
+        newBounds2.expandToInclude(affectedBounds2);
+        
+        LayerInfo layer = mockLayer(featureType1, "layer");
+        LayerInfo otherLayer = mockLayer(featureType2, "otherLayer");
+        
+        EasyMock.expect(catalog.getFeatureTypeByName(featureTypeName1)).andStubReturn(featureType1);
+        EasyMock.expect(featureType1.getNativeBoundingBox()).andStubReturn(new ReferencedEnvelope(oldBounds));
+        EasyMock.expect(featureType1.prefixedName()).andStubReturn("foo:bar");
+        EasyMock.expect(catalog.getFeatureTypeByName(featureTypeName2)).andStubReturn(featureType2);
+        EasyMock.expect(featureType2.getNativeBoundingBox()).andStubReturn(new ReferencedEnvelope(oldBounds));
+        EasyMock.expect(featureType2.prefixedName()).andStubReturn("foo:quux");
+        
+        featureType1.setNativeBoundingBox(EasyMock.eq(newBounds1));EasyMock.expectLastCall().once();
+        catalog.save(featureType1);EasyMock.expectLastCall().once();
+        featureType2.setNativeBoundingBox(EasyMock.eq(newBounds2));EasyMock.expectLastCall().once();
+        catalog.save(featureType2);EasyMock.expectLastCall().once();
+        
+        EasyMock.expect(catalog.list(EasyMock.eq(LayerGroupInfo.class), EasyMock.anyObject()))
+            .andStubAnswer(()-> new CloseableIteratorAdapter<LayerGroupInfo>(
+                    Collections.emptyListIterator()));
+        
+        EasyMock.replay(catalog, featureType1, featureType2, layer, otherLayer);
+        
+        listener.setLazyLayers(Collections.singletonList("foo:bar"));
+        
+        issueInsert(extendedProperties, featureTypeQName1, affectedBounds1);
+        issueInsert(extendedProperties, featureTypeQName2, affectedBounds2);
+        
+        TransactionType request = EasyMock.createNiceMock(TransactionType.class);
+        TransactionResponseType result = EasyMock.createNiceMock(TransactionResponseType.class);
+        EasyMock.expect(request.getExtendedProperties()).andStubReturn(extendedProperties);
+        EasyMock.replay(request, result);
+        
+        listener.afterTransaction(request, result, true);
+        
+        // Only the hot layer is left pending
+        Assert.assertTrue(listener.hasPendingBounds());
+        Assert.assertThat(listener.pendingBounds.keySet(), contains(featureTypeName1));
+        
+        listener.flushPendingBounds();
+        
+        Assert.assertFalse(listener.hasPendingBounds());
+        
+        EasyMock.verify(catalog, featureType1, featureType2, request, result, layer, otherLayer);
+    }
+    
+    @Test
+    public void testFlushPendingBoundsUsesRawCatalog() throws Exception {
+        Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+        ReferencedEnvelope affectedBounds = new ReferencedEnvelope(-180, 0, 0, 90, WGS84);
+        ReferencedEnvelope oldBounds = new ReferencedEnvelope(-90, 0, 0, 45, WGS84);
+        ReferencedEnvelope newBounds = new ReferencedEnvelope(oldBounds);
+        newBounds.expandToInclude(affectedBounds);
+        
+        Catalog rawCatalog = EasyMock.createMock("rawCatalog", Catalog.class);
+        LayerInfo layer = EasyMock.createMock("layer", LayerInfo.class);
+        EasyMock.expect(layer.getId()).andStubReturn("layerId");
+        
+        // The secured catalog only resolves the layer while the transaction is handled, it is
+        // hidden from whoever triggers the flush
+        EasyMock.expect(catalog.getFeatureTypeByName(featureTypeName1)).andReturn(featureType1).times(2);
+        EasyMock.expect(featureType1.getNativeBoundingBox()).andStubReturn(oldBounds);
+        
+        EasyMock.expect(rawCatalog.getFeatureTypeByName(featureTypeName1)).andStubReturn(featureType1);
+        EasyMock.expect(rawCatalog.getLayers(featureType1)).andStubReturn(Collections.singletonList(layer));
+        EasyMock.expect(rawCatalog.list(EasyMock.eq(LayerGroupInfo.class), EasyMock.anyObject()))
+            .andStubAnswer(()-> new CloseableIteratorAdapter<LayerGroupInfo>(
+                    Collections.emptyListIterator()));
+        featureType1.setNativeBoundingBox(EasyMock.eq(newBounds));EasyMock.expectLastCall().once(); 
+        rawCatalog.save(featureType1);EasyMock.expectLastCall().once();
+        
+        EasyMock.replay(catalog, rawCatalog, featureType1, featureType2, layer);
+        
+        listener.setLazy(true);
+        listener.setRawCatalog(rawCatalog);
+        
+        issueInsert(extendedProperties, affectedBounds);
+        
+        TransactionType request = EasyMock.createNiceMock(TransactionType.class);
+        TransactionResponseType result = EasyMock.createNiceMock(TransactionResponseType.class);
+        EasyMock.expect(request.getExtendedProperties()).andStubReturn(extendedProperties);
+        EasyMock.replay(request, result);
+        
+        listener.afterTransaction(request, result, true);
+        
+        listener.flushPendingBounds();
+        
+        Assert.assertFalse(listener.hasPendingBounds());
+        
+        EasyMock.verify(catalog, rawCatalog, featureType1, featureType2, request, result, layer);
+    }
+    
+    @Test
+    public void testFlushPendingBoundsKeepsFailedSaves() throws Exception {
+        Map<Object, Object> extendedProperties = new HashMap<Object, Object>();
+        ReferencedEnvelope affectedBounds = new ReferencedEnvelope(-180, 0, 0, 90, WGS84);
+        ReferencedEnvelope oldBounds = new ReferencedEnvelope(-90, 0, 0, 45, WGS84);
+        ReferencedEnvelope newBounds = new ReferencedEnvelope(oldBounds);
+        newBounds.expandToInclude(affectedBounds);
+        
+        LayerInfo layer = mockLayer(featureType1, "layer");
+        
+        EasyMock.expect(catalog.getFeatureTypeByName(featureTypeName1)).andStubReturn(featureType1);
+        EasyMock.expect(featureType1.getNativeBoundingBox()).andStubReturn(oldBounds);
+        EasyMock.expect(featureType1.prefixedName()).andStubReturn("foo:bar");
+        
+        // The first save fails, the expansion must survive for the second flush
+        featureType1.setNativeBoundingBox(EasyMock.eq(newBounds));EasyMock.expectLastCall().times(2);
+        catalog.save(featureType1);EasyMock.expectLastCall().andThrow(new RuntimeException("Simulated save failure")).once();
+        catalog.save(featureType1);EasyMock.expectLastCall().once();
+        
+        EasyMock.expect(catalog.list(EasyMock.eq(LayerGroupInfo.class), EasyMock.anyObject()))
+            .andStubAnswer(()-> new CloseableIteratorAdapter<LayerGroupInfo>(
+                    Collections.emptyListIterator()));
+        
+        EasyMock.replay(catalog, featureType1, featureType2, layer);
+        
+        listener.setLazy(true);
+        
+        issueInsert(extendedProperties, affectedBounds);
+        
+        TransactionType request = EasyMock.createNiceMock(TransactionType.class);
+        TransactionResponseType result = EasyMock.createNiceMock(TransactionResponseType.class);
+        EasyMock.expect(request.getExtendedProperties()).andStubReturn(extendedProperties);
+        EasyMock.replay(request, result);
+        
+        listener.afterTransaction(request, result, true);
+        
+        listener.flushPendingBounds();
+        
+        Assert.assertTrue(listener.hasPendingBounds());
+        
+        listener.flushPendingBounds();
+        
+        Assert.assertFalse(listener.hasPendingBounds());
+        
+        EasyMock.verify(catalog, featureType1, featureType2, request, result, layer);
+    }
+    
     void mockLayerGroupList(List<LayerGroupInfo> groups) {
         Capture<Filter> filterCapture = new Capture<>();
         EasyMock.expect(catalog.list(EasyMock.eq(LayerGroupInfo.class), EasyMock.capture(filterCapture)))
@@ -420,6 +738,11 @@ public class BoundsUpdateTransactionListenerTest {
      */
     private void issueInsert(Map<Object, Object> extendedProperties,
             ReferencedEnvelope affectedBounds) {
+        issueInsert(extendedProperties, featureTypeQName1, affectedBounds);
+    }
+    
+    private void issueInsert(Map<Object, Object> extendedProperties, QName layerName,
+            ReferencedEnvelope affectedBounds) {
         
         TransactionType transaction = EasyMock.createNiceMock(TransactionType.class);
         EasyMock.expect(transaction.getExtendedProperties()).andStubReturn(extendedProperties);
@@ -428,7 +751,7 @@ public class BoundsUpdateTransactionListenerTest {
         
         EasyMock.expect(event.getRequest()).andStubReturn(transaction);
         
-        EasyMock.expect(event.getLayerName()).andStubReturn(featureTypeQName1);
+        EasyMock.expect(event.getLayerName()).andStubReturn(layerName);
         
         InsertElementType insert = EasyMock.createNiceMock(InsertElementType.class);
         
@@ -0,0 +1,120 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.mapstory.geoserver.boundsupdater;
+
+import static org.geotools.referencing.crs.DefaultGeographicCRS.WGS84;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.junit.Test;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+public class DirtyRegionSetTest {
+
+    @Test
+    public void testKeepsDistantRegionsApart() {
+        DirtyRegionSet set = new DirtyRegionSet(4);
+        ReferencedEnvelope west = new ReferencedEnvelope(-170, -160, 10, 20, WGS84);
+        ReferencedEnvelope east = new ReferencedEnvelope(160, 170, 10, 20, WGS84);
+
+        set.add(west);
+        set.add(east);
+
+        assertThat(set, containsInAnyOrder(west, east));
+    }
+
+    @Test
+    public void testIgnoresCoveredRegion() {
+        DirtyRegionSet set = new DirtyRegionSet(4);
+        ReferencedEnvelope outer = new ReferencedEnvelope(0, 10, 0, 10, WGS84);
+        ReferencedEnvelope inner = new ReferencedEnvelope(2, 3, 2, 3, WGS84);
+
+        set.add(outer);
+        set.add(inner);
+
+        assertThat(set, contains(outer));
+    }
+
+    @Test
+    public void testMergesClosestPairWhenFull() {
+        DirtyRegionSet set = new DirtyRegionSet(2);
+        ReferencedEnvelope west1 = new ReferencedEnvelope(-170, -160, 10, 20, WGS84);
+        ReferencedEnvelope west2 = new ReferencedEnvelope(-158, -150, 10, 20, WGS84);
+        ReferencedEnvelope east = new ReferencedEnvelope(160, 170, 10, 20, WGS84);
+
+        set.add(west1);
+        set.add(east);
+        set.add(west2);
+
+        assertThat(set, containsInAnyOrder(
+                new ReferencedEnvelope(-170, -150, 10, 20, WGS84),
+                east));
+    }
+
+    @Test
+    public void testDropsRegionsCoveredByNewRegion() {
+        DirtyRegionSet set = new DirtyRegionSet(2);
+        set.add(new ReferencedEnvelope(2, 3, 2, 3, WGS84));
+        set.add(new ReferencedEnvelope(5, 6, 5, 6, WGS84));
+        ReferencedEnvelope outer = new ReferencedEnvelope(0, 10, 0, 10, WGS84);
+        ReferencedEnvelope east = new ReferencedEnvelope(160, 170, 10, 20, WGS84);
+
+        set.add(outer);
+        set.add(east);
+
+        assertThat(set, containsInAnyOrder(outer, east));
+    }
+
+    @Test
+    public void testDoesNotMergeDistantPointsSharingCoordinate() {
+        DirtyRegionSet set = new DirtyRegionSet(2);
+        set.add(new ReferencedEnvelope(-170, -170, 10, 10, WGS84));
+        set.add(new ReferencedEnvelope(170, 170, 10, 10, WGS84));
+        set.add(new ReferencedEnvelope(-169, -169, 11, 11, WGS84));
+
+        assertThat(set, containsInAnyOrder(
+                new ReferencedEnvelope(-170, -169, 10, 11, WGS84),
+                new ReferencedEnvelope(170, 170, 10, 10, WGS84)));
+    }
+
+    @Test
+    public void testDoesNotMergeDistantLinesSharingCoordinate() {
+        DirtyRegionSet set = new DirtyRegionSet(2);
+        set.add(new ReferencedEnvelope(0, 0, -80, -70, WGS84));
+        set.add(new ReferencedEnvelope(0, 0, 70, 80, WGS84));
+        set.add(new ReferencedEnvelope(1, 1, -69, -68, WGS84));
+
+        assertThat(set, containsInAnyOrder(
+                new ReferencedEnvelope(0, 1, -80, -68, WGS84),
+                new ReferencedEnvelope(0, 0, 70, 80, WGS84)));
+    }
+
+    @Test
+    public void testSingleRegionIsUnion() {
+        DirtyRegionSet set = new DirtyRegionSet(1);
+        set.add(new ReferencedEnvelope(-170, -160, 10, 20, WGS84));
+        set.add(new ReferencedEnvelope(160, 170, -20, -10, WGS84));
+
+        assertThat(set, contains(new ReferencedEnvelope(-170, 170, -20, 20, WGS84)));
+    }
+
+    @Test
+    public void testDoesNotMergeDifferentCrs() throws Exception {
+        final CoordinateReferenceSystem otherCrs = CRS.decode("EPSG:28992");
+        DirtyRegionSet set = new DirtyRegionSet(1);
+        ReferencedEnvelope geographic = new ReferencedEnvelope(-170, -160, 10, 20, WGS84);
+        ReferencedEnvelope projected = new ReferencedEnvelope(142892, 142900, 470783, 470790, otherCrs);
+
+        set.add(geographic);
+        set.add(projected);
+
+        assertThat(set.size(), equalTo(2));
+    }
+}
@@ -0,0 +1,175 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.mapstory.geoserver.boundsupdater;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.easymock.EasyMock;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.Operation;
+import org.junit.Before;
+import org.junit.Test;
+import org.restlet.data.Method;
+import org.restlet.data.Response;
+
+public class PendingBoundsFlusherTest {
+
+    private BoundsUpdateTransactionListener listener;
+
+    private PendingBoundsFlusher flusher;
+
+    @Before
+    public void setUp() throws Exception {
+        listener = EasyMock.createMock("listener", BoundsUpdateTransactionListener.class);
+        flusher = new PendingBoundsFlusher(listener);
+    }
+
+    Operation mockOperation(String id) {
+        Operation operation = EasyMock.createNiceMock(id, Operation.class);
+        EasyMock.expect(operation.getId()).andStubReturn(id);
+        EasyMock.replay(operation);
+        return operation;
+    }
+
+    @Test
+    public void testGetCapabilitiesFlushes() {
+        EasyMock.expect(listener.hasPendingBounds()).andReturn(true).once();
+        listener.flushPendingBounds();EasyMock.expectLastCall().once();
+        EasyMock.replay(listener);
+
+        flusher.operationDispatched(new Request(), mockOperation("GetCapabilities"));
+
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testOtherOperationsDoNotFlush() {
+        EasyMock.replay(listener);
+
+        flusher.operationDispatched(new Request(), mockOperation("GetMap"));
+        flusher.operationDispatched(new Request(), mockOperation("Transaction"));
+
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testNothingPending() {
+        EasyMock.expect(listener.hasPendingBounds()).andReturn(false).once();
+        EasyMock.replay(listener);
+
+        flusher.operationDispatched(new Request(), mockOperation("GetCapabilities"));
+
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testRestReadFlushes() {
+        EasyMock.expect(listener.hasPendingBounds()).andReturn(true).once();
+        listener.flushPendingBounds();EasyMock.expectLastCall().once();
+        EasyMock.replay(listener);
+
+        org.restlet.data.Request get = new org.restlet.data.Request(Method.GET, "http://localhost/geoserver/rest/layers");
+        flusher.init(get, new Response(get));
+        org.restlet.data.Request put = new org.restlet.data.Request(Method.PUT, "http://localhost/geoserver/rest/layers/foo:bar");
+        flusher.init(put, new Response(put));
+
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testUnrelatedRestReadDoesNotFlush() {
+        EasyMock.replay(listener);
+
+        for (String path : new String[] {"styles", "about/version.xml", "fonts", "workspaces", "workspaces/foo/datastores"}) {
+            org.restlet.data.Request get = new org.restlet.data.Request(Method.GET, "http://localhost/geoserver/rest/"+path);
+            flusher.init(get, new Response(get));
+        }
+
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testReadsBounds() {
+        assertTrue(PendingBoundsFlusher.readsBounds("/geoserver/rest/layers"));
+        assertTrue(PendingBoundsFlusher.readsBounds("/geoserver/rest/layers/foo:bar.json"));
+        assertTrue(PendingBoundsFlusher.readsBounds("/geoserver/rest/layergroups/group.xml"));
+        assertTrue(PendingBoundsFlusher.readsBounds("/geoserver/rest/workspaces/foo/layergroups/group"));
+        assertTrue(PendingBoundsFlusher.readsBounds("/geoserver/rest/workspaces/foo/featuretypes/bar"));
+        assertTrue(PendingBoundsFlusher.readsBounds("/geoserver/rest/workspaces/foo/datastores/store/featuretypes/bar.xml"));
+        assertFalse(PendingBoundsFlusher.readsBounds("/geoserver/rest/styles/point.sld"));
+        assertFalse(PendingBoundsFlusher.readsBounds("/geoserver/rest/workspaces/foo/styles"));
+        assertFalse(PendingBoundsFlusher.readsBounds("/geoserver/rest/layersomething"));
+    }
+
+    @Test
+    public void testBackgroundTickScheduledWhenLazy() {
+        EasyMock.expect(listener.usesLazyBounds()).andStubReturn(true);
+        EasyMock.expect(listener.hasPendingBounds()).andStubReturn(false);
+        EasyMock.replay(listener);
+
+        flusher.afterPropertiesSet();
+
+        ScheduledExecutorService executor = flusher.executor;
+        assertNotNull(executor);
+        assertFalse(executor.isShutdown());
+
+        flusher.destroy();
+
+        assertNull(flusher.executor);
+        assertTrue(executor.isShutdown());
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testNoBackgroundTickWhenNotLazy() {
+        EasyMock.expect(listener.usesLazyBounds()).andStubReturn(false);
+        EasyMock.replay(listener);
+
+        flusher.afterPropertiesSet();
+
+        assertNull(flusher.executor);
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testNoBackgroundTickWithoutInterval() {
+        EasyMock.expect(listener.usesLazyBounds()).andStubReturn(true);
+        EasyMock.replay(listener);
+
+        flusher.setInterval(0);
+        flusher.afterPropertiesSet();
+
+        assertNull(flusher.executor);
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testTickSurvivesErrors() {
+        EasyMock.expect(listener.hasPendingBounds()).andReturn(true).once();
+        listener.flushPendingBounds();EasyMock.expectLastCall().andThrow(new AssertionError("Simulated error")).once();
+        EasyMock.replay(listener);
+
+        flusher.tick();
+
+        EasyMock.verify(listener);
+    }
+
+    @Test
+    public void testDestroyFlushes() {
+        EasyMock.expect(listener.hasPendingBounds()).andReturn(true).once();
+        listener.flushPendingBounds();EasyMock.expectLastCall().once();
+        EasyMock.replay(listener);
+
+        flusher.destroy();
+
+        EasyMock.verify(listener);
+    }
+}